@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.ning.http.client.Body;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Request body of unknown length made of a sequence of ByteBuffers, pulled one at a time as the http client sends the body.
+ */
+abstract class AbstractByteBufferBody implements Body
+{
+    private ByteBuffer current = null;
+
+    @Override
+    public long getContentLength()
+    {
+        return -1;
+    }
+
+    @Override
+    public long read(final ByteBuffer target) throws IOException
+    {
+        while (current == null || !current.hasRemaining()) {
+            current = next();
+            if (current == null) {
+                return -1;
+            }
+        }
+
+        final int read = Math.min(target.remaining(), current.remaining());
+        if (read == current.remaining()) {
+            target.put(current);
+        }
+        else {
+            final ByteBuffer slice = current.duplicate();
+            slice.limit(slice.position() + read);
+            target.put(slice);
+            current.position(current.position() + read);
+        }
+        return read;
+    }
+
+    /**
+     * @return the next buffer to send, null on end of body
+     * @throws IOException if the source failed
+     */
+    protected abstract ByteBuffer next() throws IOException;
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+}
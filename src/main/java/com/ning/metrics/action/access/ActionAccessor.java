@@ -17,30 +17,39 @@
 package com.ning.metrics.action.access;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ning.http.client.AsyncCompletionHandler;
 import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.Body;
 import com.ning.http.client.HttpResponseBodyPart;
 import com.ning.http.client.HttpResponseHeaders;
 import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Request;
 import com.ning.http.client.Response;
-import java.io.BufferedReader;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,9 +60,18 @@ public class ActionAccessor
     private static final String USER_AGENT = "action-access/1.0";
     // On our testing, we were doing 600 MB per minute on upload (80 megabits/second)
     private static final int CONNECTION_TIMEOUT_IN_MS = 5 * 60 * 1000; // 5 minutes
+    // Max number of body parts buffered between the http client and the parser, per request
+    private static final int PIPELINE_MAX_BUFFERED_PARTS = 256;
+    // Streaming uploads buffer at most UPLOAD_MAX_BUFFERED_CHUNKS * UPLOAD_CHUNK_SIZE bytes (1 MB)
+    private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+    private static final int UPLOAD_MAX_BUFFERED_CHUNKS = 16;
+    private static final String DEFAULT_PERMISSION = "u=rw,go=r";
 
     private static final String ACTION_CORE_API_VERSION = "1.0";
     private final AsyncHttpClient client;
+    private final AsyncHttpClient streamingClient;
+    private final ExecutorService parserExecutor;
+    private final ExecutorService uploadExecutor;
     private final String host;
     private final int port;
     private final String url;
@@ -67,16 +85,24 @@ public class ActionAccessor
         this.port = port;
         this.url = String.format("http://%s:%d/rest/%s/json?path=", host, port, ACTION_CORE_API_VERSION);
         client = createHttpClient();
+        streamingClient = createStreamingHttpClient();
+        parserExecutor = createExecutor("action-access-parser-%d");
+        uploadExecutor = createExecutor("action-access-upload-%d");
     }
 
     /**
-     * Close the underlying http client
+     * Close the underlying http client and the worker pools
      */
     public synchronized void close()
     {
         if (client != null) {
             client.close();
         }
+        if (streamingClient != null) {
+            streamingClient.close();
+        }
+        parserExecutor.shutdownNow();
+        uploadExecutor.shutdownNow();
     }
 
     /**
@@ -89,27 +115,27 @@ public class ActionAccessor
                                                       final boolean raw,
                                                       final long timeout)
     {
+        final Future<ImmutableList<Map<String, Object>>> future = getPathPipelined(path, format, desiredEventFields, recursive, raw);
+        if (future == null) {
+            return null;
+        }
+
         try {
-            final Future<InputStream> future = getPath(path, recursive, raw);
-            final InputStream in = future.get(timeout, TimeUnit.SECONDS);
-            final String json = getJsonFromStreamAndClose(in);
-            if (json == null) {
-                return null;
-            }
-            final ActionCoreParser parser = new ActionCoreParser(format, desiredEventFields, DELIMITER);
-            return parser.parse(json);
+            return future.get(timeout, TimeUnit.SECONDS);
         }
-        catch (IOException ioe) {
-            log.warn("IOException: Failed to connect to action code: url = {}, error = {}", url, ioe.getMessage());
+        catch (ExecutionException ee) {
+            log.warn("Failed to fetch or parse from action core: url = {}, error = {}", url, ee.getCause() == null ? ee.getMessage() : ee.getCause().getMessage());
             return null;
         }
         catch (InterruptedException ie) {
             log.warn("Thread got interrupted: Failed to connect to action code: url = {}, error =  {}", url, ie.getMessage());
+            future.cancel(true);
             Thread.currentThread().interrupt();
             return null;
         }
         catch (TimeoutException toe) {
             log.warn("Timeout: Failed to connect to action code within {} sec, url = {}", timeout, url);
+            future.cancel(true);
             return null;
         }
         catch (Throwable other) {
@@ -118,6 +144,120 @@ public class ActionAccessor
         }
     }
 
+    /**
+     * Asynchronous interface: Returns a Future on the list of bean events.
+     * <p/>
+     * Body parts are handed over to a parser thread as they arrive, so that decoding overlaps with the transfer.
+     * Parsing never happens on the http client I/O threads.
+     * <p/>
+     * When the parser falls behind, the thread receiving the body blocks until it catches up, slowing down the
+     * transfer. That thread is dedicated to the connection (see createStreamingHttpClient), so other requests
+     * are not affected: each request in flight costs a connection thread and a parser thread.
+     */
+    public Future<ImmutableList<Map<String, Object>>> getPathPipelined(final String path,
+                                                                       final ActionCoreParser.ActionCoreParserFormat format,
+                                                                       final List<String> desiredEventFields,
+                                                                       final boolean recursive,
+                                                                       final boolean raw)
+    {
+        final String fullUrl = formatPath(path, recursive, raw);
+        final BodyPartInputStream body = new BodyPartInputStream(PIPELINE_MAX_BUFFERED_PARTS);
+        final ListenableFuture<Void> transfer;
+        try {
+            log.debug("ActionAccessor fetching {}", fullUrl);
+            transfer = streamingClient.prepareGet(fullUrl).addHeader("Accept", "application/json").execute(new AsyncHandler<Void>()
+            {
+                @Override
+                public STATE onStatusReceived(final HttpResponseStatus status) throws Exception
+                {
+                    if (status.getStatusCode() != 200) {
+                        log.warn("Failed to fetch path {} from {} got http status {}",
+                            new Object[]{path, url, status.getStatusCode()});
+                        body.fail(new IOException("Unexpected http status " + status.getStatusCode()));
+                        return STATE.ABORT;
+                    }
+                    return STATE.CONTINUE;
+                }
+
+                @Override
+                public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception
+                {
+                    return STATE.CONTINUE;
+                }
+
+                @Override
+                public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception
+                {
+                    // Blocks this connection's thread if the parser is behind, gives up if the parser went away
+                    return body.write(bodyPart.getBodyPartBytes()) ? STATE.CONTINUE : STATE.ABORT;
+                }
+
+                @Override
+                public Void onCompleted() throws Exception
+                {
+                    body.complete();
+                    return null;
+                }
+
+                @Override
+                public void onThrowable(final Throwable t)
+                {
+                    if (t instanceof CancellationException) {
+                        log.debug("Fetching path {} from {} got cancelled", path, url);
+                    }
+                    else {
+                        log.warn("Failed to contact action-core", t);
+                    }
+                    try {
+                        body.fail(t);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        catch (IOException e) {
+            log.warn("Error getting path {} from {}:{} ({})", new Object[]{path, host, port, e.getLocalizedMessage()});
+            return null;
+        }
+
+        final FutureTask<ImmutableList<Map<String, Object>>> parse = new FutureTask<ImmutableList<Map<String, Object>>>(new Callable<ImmutableList<Map<String, Object>>>()
+        {
+            @Override
+            public ImmutableList<Map<String, Object>> call() throws Exception
+            {
+                boolean parsed = false;
+                try {
+                    final ActionCoreParser parser = new ActionCoreParser(format, desiredEventFields, DELIMITER);
+                    final ImmutableList<Map<String, Object>> events = parser.parse(body);
+                    parsed = true;
+                    return events;
+                }
+                finally {
+                    body.close();
+                    if (!parsed) {
+                        // Release the connection right away instead of waiting for the next body part or the request timeout
+                        transfer.cancel(true);
+                    }
+                }
+            }
+        })
+        {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning)
+            {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                // The parser may not have started yet: stop the transfer here as well
+                transfer.cancel(true);
+                body.close();
+                return cancelled;
+            }
+        };
+        parserExecutor.execute(parse);
+        return parse;
+    }
+
     /**
      * Asynchronous interface: Returns a Future on which to wait.
      * <p/>
@@ -231,7 +371,7 @@ public class ActionAccessor
      */
     public ListenableFuture<Response> upload(final File file, final String outputPath) throws IOException
     {
-        return upload(file, outputPath, false, (short) 3, -1, "u=rw,go=r");
+        return upload(file, outputPath, false, (short) 3, -1, DEFAULT_PERMISSION);
     }
 
     /**
@@ -255,16 +395,302 @@ public class ActionAccessor
         final String permission
     ) throws IOException
     {
-        final Request request = client.preparePost(String.format("http://%s:%d/rest/%s", host, port, ACTION_CORE_API_VERSION))
+        final Request request = prepareUpload(outputPath, overwrite, replication, blocksize, permission)
             .setBody(file)
+            .build();
+        log.info("Sending local file to HDFS: {}", file.getAbsolutePath());
+        return client.executeRequest(request);
+    }
+
+    /**
+     * Asynchronous interface to stream data from a channel to HDFS, using chunked transfer encoding.
+     * The channel is read on a worker thread, never on the http client I/O threads, and is closed once fully read.
+     *
+     * @param channel    source of the data to upload
+     * @param outputPath full path on HDFS
+     * @return a Future on the action-core Response
+     * @throws IOException generic I/O Exception
+     */
+    public Future<Response> upload(final ReadableByteChannel channel, final String outputPath) throws IOException
+    {
+        return upload(channel, outputPath, false, (short) 3, -1, DEFAULT_PERMISSION);
+    }
+
+    /**
+     * Asynchronous interface to stream data from a channel to HDFS, using chunked transfer encoding.
+     * The channel is read on a worker thread, never on the http client I/O threads, and is closed once fully read.
+     *
+     * @param channel     source of the data to upload
+     * @param outputPath  full path on HDFS
+     * @param overwrite   whether an existing file should be overwritten on HDFS
+     * @param replication replication factor of the file
+     * @param blocksize   blocksize for I/O
+     * @param permission  file's permissions
+     * @return a Future on the action-core response
+     * @throws IOException generic I/O Exception
+     */
+    public Future<Response> upload(
+        final ReadableByteChannel channel,
+        final String outputPath,
+        final boolean overwrite,
+        final short replication,
+        final long blocksize,
+        final String permission
+    ) throws IOException
+    {
+        log.info("Streaming channel to HDFS: {}", outputPath);
+        final UploadOutputStream stream = newUpload(outputPath, overwrite, replication, blocksize, permission);
+        uploadExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pump(channel, stream);
+            }
+        });
+        return stream.getResponse();
+    }
+
+    /**
+     * Asynchronous interface to stream a sequence of buffers to HDFS, using chunked transfer encoding.
+     * Buffers are pulled lazily from the iterator as the http client sends them, on a thread dedicated to this upload.
+     *
+     * @param buffers    data to upload
+     * @param outputPath full path on HDFS
+     * @return a Future on the action-core Response
+     * @throws IOException generic I/O Exception
+     */
+    public Future<Response> upload(final Iterator<ByteBuffer> buffers, final String outputPath) throws IOException
+    {
+        return upload(buffers, outputPath, false, (short) 3, -1, DEFAULT_PERMISSION);
+    }
+
+    /**
+     * Asynchronous interface to stream a sequence of buffers to HDFS, using chunked transfer encoding.
+     * Buffers are pulled lazily from the iterator as the http client sends them, on a thread dedicated to this upload.
+     *
+     * @param buffers     data to upload
+     * @param outputPath  full path on HDFS
+     * @param overwrite   whether an existing file should be overwritten on HDFS
+     * @param replication replication factor of the file
+     * @param blocksize   blocksize for I/O
+     * @param permission  file's permissions
+     * @return a Future on the action-core response
+     * @throws IOException generic I/O Exception
+     */
+    public Future<Response> upload(
+        final Iterator<ByteBuffer> buffers,
+        final String outputPath,
+        final boolean overwrite,
+        final short replication,
+        final long blocksize,
+        final String permission
+    ) throws IOException
+    {
+        log.info("Streaming buffers to HDFS: {}", outputPath);
+        return uploadBody(new ByteBufferBody(buffers), null, outputPath, overwrite, replication, blocksize, permission);
+    }
+
+    /**
+     * Asynchronous interface to stream data to HDFS: returns an OutputStream to write the file content to.
+     * <p/>
+     * The upload completes once the stream is closed, see UploadOutputStream#getResponse() for the action-core response.
+     *
+     * @param outputPath full path on HDFS
+     * @return the stream to write to
+     * @throws IOException generic I/O Exception
+     */
+    public UploadOutputStream openUpload(final String outputPath) throws IOException
+    {
+        return openUpload(outputPath, false, (short) 3, -1, DEFAULT_PERMISSION);
+    }
+
+    /**
+     * Asynchronous interface to stream data to HDFS: returns an OutputStream to write the file content to.
+     * <p/>
+     * The upload completes once the stream is closed, see UploadOutputStream#getResponse() for the action-core response.
+     * Writes block while the http client is behind, at most 1 MB is buffered in memory. The upload fails if nothing
+     * is written for more than the request timeout.
+     *
+     * @param outputPath  full path on HDFS
+     * @param overwrite   whether an existing file should be overwritten on HDFS
+     * @param replication replication factor of the file
+     * @param blocksize   blocksize for I/O
+     * @param permission  file's permissions
+     * @return the stream to write to
+     * @throws IOException generic I/O Exception
+     */
+    public UploadOutputStream openUpload(
+        final String outputPath,
+        final boolean overwrite,
+        final short replication,
+        final long blocksize,
+        final String permission
+    ) throws IOException
+    {
+        log.info("Streaming output stream to HDFS: {}", outputPath);
+        return newUpload(outputPath, overwrite, replication, blocksize, permission);
+    }
+
+    private UploadOutputStream newUpload(
+        final String outputPath,
+        final boolean overwrite,
+        final short replication,
+        final long blocksize,
+        final String permission
+    ) throws IOException
+    {
+        final UploadOutputStream stream = new UploadOutputStream(outputPath, UPLOAD_CHUNK_SIZE, UPLOAD_MAX_BUFFERED_CHUNKS, CONNECTION_TIMEOUT_IN_MS);
+        stream.setResponse(uploadBody(stream.getBody(), stream, outputPath, overwrite, replication, blocksize, permission));
+        return stream;
+    }
+
+    /**
+     * @param stream stream feeding the body, terminated once the upload is over (may be null)
+     */
+    private Future<Response> uploadBody(
+        final Body body,
+        final UploadOutputStream stream,
+        final String outputPath,
+        final boolean overwrite,
+        final short replication,
+        final long blocksize,
+        final String permission
+    ) throws IOException
+    {
+        final Request request = prepareUpload(outputPath, overwrite, replication, blocksize, permission)
+            .setBody(new StreamingBodyGenerator(body, outputPath))
+            .build();
+        final AtomicReference<ListenableFuture<Response>> transfer = new AtomicReference<ListenableFuture<Response>>();
+
+        final FutureTask<Response> upload = new FutureTask<Response>(new Callable<Response>()
+        {
+            @Override
+            public Response call() throws Exception
+            {
+                // The blocking I/O client sends the whole body from the calling thread,
+                // hence the request is issued from a worker rather than from the caller, who has data to produce
+                final ListenableFuture<Response> response = streamingClient.executeRequest(request);
+                transfer.set(response);
+                try {
+                    return response.get();
+                }
+                catch (InterruptedException e) {
+                    response.cancel(true);
+                    throw e;
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        })
+        {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning)
+            {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                final ListenableFuture<Response> response = transfer.get();
+                if (response != null) {
+                    response.cancel(true);
+                }
+                return cancelled;
+            }
+
+            @Override
+            protected void done()
+            {
+                // Unblock the writer if the request fails (or completes) before the stream is closed
+                if (stream != null) {
+                    stream.terminate();
+                }
+            }
+        };
+        uploadExecutor.execute(upload);
+        return upload;
+    }
+
+    private void pump(final ReadableByteChannel channel, final UploadOutputStream stream)
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(UPLOAD_CHUNK_SIZE);
+        boolean sent = false;
+        try {
+            try {
+                while (read(channel, buffer)) {
+                    stream.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            finally {
+                // Release the source before completing (or cancelling) the upload
+                close(channel);
+            }
+            stream.close();
+            sent = true;
+        }
+        catch (ChannelReadException e) {
+            log.warn("Failed to read data to upload to {}: {}", stream.getOutputPath(), e.getCause().getLocalizedMessage());
+        }
+        catch (IOException e) {
+            // The request failed or got cancelled
+            log.warn("Failed to upload to {}: {}", stream.getOutputPath(), e.getLocalizedMessage());
+        }
+        catch (RuntimeException e) {
+            log.warn("Unexpected error while uploading to " + stream.getOutputPath(), e);
+        }
+        finally {
+            if (!sent) {
+                // Don't close the stream: that would complete a truncated upload
+                stream.getResponse().cancel(true);
+            }
+        }
+    }
+
+    private static void close(final ReadableByteChannel channel)
+    {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Failed to close upload channel: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return false on end of stream
+     * @throws ChannelReadException if the channel failed, to tell read failures from upload failures
+     */
+    private static boolean read(final ReadableByteChannel channel, final ByteBuffer buffer) throws ChannelReadException
+    {
+        try {
+            return channel.read(buffer) >= 0;
+        }
+        catch (IOException e) {
+            throw new ChannelReadException(e);
+        }
+    }
+
+    private static class ChannelReadException extends IOException
+    {
+        public ChannelReadException(final IOException cause)
+        {
+            super(cause);
+        }
+    }
+
+    private AsyncHttpClient.BoundRequestBuilder prepareUpload(
+        final String outputPath,
+        final boolean overwrite,
+        final short replication,
+        final long blocksize,
+        final String permission
+    )
+    {
+        return client.preparePost(String.format("http://%s:%d/rest/%s", host, port, ACTION_CORE_API_VERSION))
             .addQueryParameter("path", outputPath)
             .addQueryParameter("overwrite", String.valueOf(overwrite))
             .addQueryParameter("replication", String.valueOf(replication))
             .addQueryParameter("blocksize", String.valueOf(blocksize))
-            .addQueryParameter("permission", permission)
-            .build();
-        log.info("Sending local file to HDFS: {}", file.getAbsolutePath());
-        return client.executeRequest(request);
+            .addQueryParameter("permission", permission);
     }
 
     private String formatPath(final String path, final boolean recursive, final boolean raw)
@@ -279,52 +705,48 @@ public class ActionAccessor
         return tmp.toString();
     }
 
-    private String getJsonFromStreamAndClose(final InputStream in)
+    private static AsyncHttpClient createHttpClient()
     {
-        if (in == null) {
-            return null;
-        }
-        try {
-
-            final Reader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-            int read;
-            final char[] temp = new char[1024];
-            final Writer writer = new StringWriter();
-            while ((read = reader.read(temp)) != -1) {
-                writer.write(temp, 0, read);
-            }
-            return writer.toString();
-        }
-        catch (IOException ioe) {
-            log.warn("Failed to read from stream {}", ioe.getMessage());
-            return null;
-        }
-        finally {
-            closeStream(in);
-        }
+        return new AsyncHttpClient(createHttpClientConfig().build());
     }
 
-    private void closeStream(final InputStream in)
+    /**
+     * Client for the requests which wait on the caller: pipelined downloads (the parser) and streaming uploads (the producer).
+     * <p/>
+     * The default client shares a couple of I/O threads between all its connections: a body part handler or a body
+     * waiting there would stall every other request of this accessor. With blocking I/O, each connection gets its own
+     * thread and the body is sent from the thread issuing the request, so a slow parser or producer only holds up its
+     * own request.
+     */
+    private static AsyncHttpClient createStreamingHttpClient()
     {
-        if (in != null) {
-            try {
-                in.close();
-            }
-            catch (IOException e) {
-                log.warn("Failed to close http-client - provided InputStream: {}", e.getLocalizedMessage());
-            }
-        }
+        final NettyAsyncHttpProviderConfig providerConfig = new NettyAsyncHttpProviderConfig();
+        providerConfig.addProperty(NettyAsyncHttpProviderConfig.USE_BLOCKING_IO, Boolean.TRUE);
+        return new AsyncHttpClient(createHttpClientConfig()
+            .setAsyncHttpClientProviderConfig(providerConfig)
+            .setExecutorService(createExecutor("action-access-streaming-io-%d"))
+            .build());
     }
 
-    private static AsyncHttpClient createHttpClient()
+    private static AsyncHttpClientConfig.Builder createHttpClientConfig()
     {
         // Don't limit the number of connections per host
         // See https://github.com/ning/async-http-client/issues/issue/28
-        final AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder()
+        return new AsyncHttpClientConfig.Builder()
             .setMaximumConnectionsPerHost(-1)
             .setUserAgent(USER_AGENT)
             .setConnectionTimeoutInMs(CONNECTION_TIMEOUT_IN_MS)
             .setRequestTimeoutInMs(CONNECTION_TIMEOUT_IN_MS);
-        return new AsyncHttpClient(builder.build());
+    }
+
+    private static ExecutorService createExecutor(final String nameFormat)
+    {
+        // Not bounded on purpose: every in-flight pipelined request (resp. streaming upload) holds a worker for its
+        // whole duration, parsing (resp. sending or feeding) its body. A queued task would leave its connection
+        // blocked until the request timeout.
+        return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat(nameFormat)
+            .setDaemon(true)
+            .build());
     }
 }
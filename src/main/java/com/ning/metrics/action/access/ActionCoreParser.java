@@ -17,10 +17,14 @@
 package com.ning.metrics.action.access;
 
 import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -66,72 +70,110 @@ public class ActionCoreParser
     }
 
     public ImmutableList<Map<String, Object>> parse(final String json) throws Exception
+    {
+        return parse(mapper.getJsonFactory().createJsonParser(json));
+    }
+
+    /**
+     * Parse the json as it is read from the stream, without buffering the whole document first.
+     */
+    public ImmutableList<Map<String, Object>> parse(final InputStream json) throws Exception
+    {
+        return parse(mapper.getJsonFactory().createJsonParser(json));
+    }
+
+    /**
+     * Deserialize the listing one entry at a time: only the current entry is held in memory, besides the events.
+     */
+    @SuppressWarnings("rawtypes")
+    private ImmutableList<Map<String, Object>> parse(final JsonParser jp) throws Exception
+    {
+        try {
+            final ImmutableList.Builder<Map<String, Object>> builder = new ImmutableList.Builder<Map<String, Object>>();
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a json object, got " + jp.getCurrentToken());
+            }
+
+            boolean sawEntries = false;
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = jp.getCurrentName();
+                final JsonToken value = jp.nextToken();
+                if (!"entries".equals(field) || value != JsonToken.START_ARRAY) {
+                    jp.skipChildren();
+                    continue;
+                }
+
+                sawEntries = true;
+                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                    addEvents(builder, mapper.readValue(jp, Map.class));
+                }
+            }
+
+            if (!sawEntries) {
+                throw new IOException("No entries in the listing");
+            }
+            return builder.build();
+        }
+        finally {
+            jp.close();
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void addEvents(final ImmutableList.Builder<Map<String, Object>> builder, final Map entryDirectory)
     {
         switch (format) {
             case ACTION_CORE_FORMAT_DEFAULT:
-                return parseDefault(json);
+                addEventsDefault(builder, entryDirectory);
+                break;
             case ACTION_CORE_FORMAT_MR:
-                return parseMR(json);
+                addEventsMR(builder, entryDirectory);
+                break;
             default:
                 throw new RuntimeException("Format " + format + " not supported");
         }
     }
 
     @SuppressWarnings({"rawtypes", "unchecked"})
-    private ImmutableList<Map<String, Object>> parseMR(final String json) throws Exception
+    private void addEventsMR(final ImmutableList.Builder<Map<String, Object>> builder, final Map entryDirectory)
     {
-        final ImmutableList.Builder<Map<String, Object>> builder = new ImmutableList.Builder<Map<String, Object>>();
-        final Map eventTop = mapper.readValue(json, Map.class);
-
-        final Iterable<Map> entriesDirectory = (List<Map>) eventTop.get("entries");
-        for (final Map entryDirectory : entriesDirectory) {
-            List<Map> entries = null;
-            Object entriesRow = null;
-            try {
-                entriesRow = entryDirectory.get("content");
-                if (entriesRow == null) {
-                    continue;
-                }
-                if (entriesRow instanceof String && entriesRow.equals("")) {
-                    continue;
-                }
-                entries = (List<Map>) entriesRow;
+        List<Map> entries = null;
+        Object entriesRow = null;
+        try {
+            entriesRow = entryDirectory.get("content");
+            if (entriesRow == null) {
+                return;
             }
-            catch (Exception e) {
-                log.error("Failed to deserialize the event {}", entriesRow);
+            if (entriesRow instanceof String && entriesRow.equals("")) {
+                return;
             }
+            entries = (List<Map>) entriesRow;
+        }
+        catch (Exception e) {
+            log.error("Failed to deserialize the event {}", entriesRow);
+        }
 
-            if (entries != null) {
-                for (final Map<String, Object> event : entries) {
-                    final Map<String, Object> simplifiedEvent = extractEventTabSep((String) event.get("record"));
-                    builder.add(simplifiedEvent);
-                }
+        if (entries != null) {
+            for (final Map<String, Object> event : entries) {
+                final Map<String, Object> simplifiedEvent = extractEventTabSep((String) event.get("record"));
+                builder.add(simplifiedEvent);
             }
         }
-        return builder.build();
     }
 
     @SuppressWarnings({"rawtypes", "unchecked"})
-    private ImmutableList<Map<String, Object>> parseDefault(final String json) throws Exception
+    private void addEventsDefault(final ImmutableList.Builder<Map<String, Object>> builder, final Map entryDirectory)
     {
-        final ImmutableList.Builder<Map<String, Object>> builder = new ImmutableList.Builder<Map<String, Object>>();
-        final Map eventTop = mapper.readValue(json, Map.class);
-
-        final Iterable<Map> entriesDirectory = (List<Map>) eventTop.get("entries");
-        for (final Map entryDirectory : entriesDirectory) {
-            final Object contentRow = entryDirectory.get("content");
-            if (contentRow instanceof String && contentRow.equals("")) {
-                continue;
-            }
-
-            final Iterable<Map> entryContent = (Iterable<Map>) contentRow;
-            for (final Map<String, Object> event : entryContent) {
-                final Map<String, Object> simplifiedEvent = extractEvent(event);
-                builder.add(simplifiedEvent);
-            }
+        final Object contentRow = entryDirectory.get("content");
+        if (contentRow instanceof String && contentRow.equals("")) {
+            return;
         }
 
-        return builder.build();
+        final Iterable<Map> entryContent = (Iterable<Map>) contentRow;
+        for (final Map<String, Object> event : entryContent) {
+            final Map<String, Object> simplifiedEvent = extractEvent(event);
+            builder.add(simplifiedEvent);
+        }
     }
 
     private Map<String, Object> extractEvent(final Map<String, Object> eventFull)
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InputStream fed by the http client body parts as they arrive.
+ * <p/>
+ * At most maxParts body parts are buffered: the producer (http client I/O thread) blocks
+ * when the consumer falls behind, and gives up as soon as the consumer closes the stream.
+ */
+class BodyPartInputStream extends InputStream
+{
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+    private static final long OFFER_POLL_IN_MS = 100;
+
+    private final BlockingQueue<ByteBuffer> parts;
+    private ByteBuffer current = null;
+    private volatile Throwable error = null;
+    private volatile boolean closed = false;
+
+    public BodyPartInputStream(final int maxParts)
+    {
+        this.parts = new ArrayBlockingQueue<ByteBuffer>(maxParts);
+    }
+
+    /**
+     * Producer side: enqueue a body part, blocking while the buffer is full.
+     *
+     * @param bytes body part content, not copied
+     * @return false if the consumer closed the stream and the part was dropped
+     * @throws InterruptedException if the producer got interrupted while waiting
+     */
+    public boolean write(final byte[] bytes) throws InterruptedException
+    {
+        return enqueue(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Producer side: signal that the body has been fully received.
+     */
+    public void complete() throws InterruptedException
+    {
+        enqueue(END_OF_STREAM);
+    }
+
+    /**
+     * Producer side: signal that the transfer failed. The error is rethrown to the consumer.
+     */
+    public void fail(final Throwable t) throws InterruptedException
+    {
+        if (error == null) {
+            error = t;
+        }
+        enqueue(END_OF_STREAM);
+    }
+
+    private boolean enqueue(final ByteBuffer part) throws InterruptedException
+    {
+        while (!closed) {
+            if (parts.offer(part, OFFER_POLL_IN_MS, TimeUnit.MILLISECONDS)) {
+                // close() may have emptied the buffer while we were waiting
+                if (closed) {
+                    parts.clear();
+                    return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!fill()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int read = Math.min(len, current.remaining());
+        current.get(b, off, read);
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return current == null ? 0 : current.remaining();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        parts.clear();
+    }
+
+    /**
+     * @return true if data is available in current, false on end of stream
+     */
+    private boolean fill() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (current == null || !current.hasRemaining()) {
+            if (current == END_OF_STREAM) {
+                checkError();
+                return false;
+            }
+
+            try {
+                current = parts.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for body part");
+            }
+        }
+
+        return true;
+    }
+
+    private void checkError() throws IOException
+    {
+        if (error == null) {
+            return;
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        throw new IOException(error);
+    }
+}
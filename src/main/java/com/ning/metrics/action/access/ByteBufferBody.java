@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Request body of unknown length pulled from a sequence of ByteBuffers.
+ * <p/>
+ * Buffers are consumed lazily, one at a time, as the http client sends the body.
+ */
+class ByteBufferBody extends AbstractByteBufferBody
+{
+    private final Iterator<ByteBuffer> buffers;
+
+    public ByteBufferBody(final Iterator<ByteBuffer> buffers)
+    {
+        this.buffers = buffers;
+    }
+
+    @Override
+    protected ByteBuffer next()
+    {
+        return buffers.hasNext() ? buffers.next() : null;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.ning.http.client.Body;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames a body of unknown length with HTTP/1.1 chunked transfer encoding.
+ * <p/>
+ * The http client only sets the Transfer-Encoding header and writes whatever the body returns as is,
+ * so each read is turned into one chunk (hex size, CRLF, data, CRLF), followed by the last zero-length chunk.
+ */
+class ChunkedBody implements Body
+{
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    // Room for the chunk size (up to 8 hex digits) and the two CRLFs
+    private static final int FRAMING_OVERHEAD = 8 + 2 * CRLF.length;
+
+    private final Body delegate;
+    private ByteBuffer data = null;
+    private boolean lastChunkSent = false;
+
+    public ChunkedBody(final Body delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return -1;
+    }
+
+    @Override
+    public long read(final ByteBuffer target) throws IOException
+    {
+        if (lastChunkSent) {
+            return -1;
+        }
+        if (target.remaining() <= FRAMING_OVERHEAD) {
+            throw new IOException("Buffer too small to frame a chunk: " + target.remaining());
+        }
+
+        final int capacity = target.remaining() - FRAMING_OVERHEAD;
+        if (data == null || data.capacity() < capacity) {
+            data = ByteBuffer.allocate(capacity);
+        }
+        data.clear();
+        data.limit(capacity);
+
+        final long read = delegate.read(data);
+        if (read < 0) {
+            target.put(LAST_CHUNK);
+            lastChunkSent = true;
+            return LAST_CHUNK.length;
+        }
+        if (read == 0) {
+            // A zero-length chunk would terminate the body
+            return 0;
+        }
+
+        data.flip();
+        final int start = target.position();
+        target.put(Integer.toHexString(data.remaining()).getBytes("US-ASCII"));
+        target.put(CRLF);
+        target.put(data);
+        target.put(CRLF);
+        return target.position() - start;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        delegate.close();
+    }
+}
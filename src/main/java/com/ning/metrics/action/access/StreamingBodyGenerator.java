@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands a streaming body, framed with chunked transfer encoding, to the http client.
+ * <p/>
+ * The source can only be consumed once: if the http client asks for the body again (e.g. to retry on
+ * a stale pooled connection), the request fails instead of resending a partly consumed stream.
+ */
+class StreamingBodyGenerator implements BodyGenerator
+{
+    private final Body body;
+    private final String outputPath;
+    private final AtomicBoolean created = new AtomicBoolean(false);
+
+    public StreamingBodyGenerator(final Body body, final String outputPath)
+    {
+        this.body = body;
+        this.outputPath = outputPath;
+    }
+
+    @Override
+    public Body createBody() throws IOException
+    {
+        if (!created.compareAndSet(false, true)) {
+            throw new IOException("Streaming upload to " + outputPath + " cannot be replayed");
+        }
+        return new ChunkedBody(body);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.ning.http.client.Body;
+import com.ning.http.client.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutputStream streaming its content to HDFS via the action-core, using chunked transfer encoding.
+ * <p/>
+ * At most maxChunks chunks of chunkSize bytes are buffered: writes block while the http client
+ * is behind. The upload is finished when the stream is closed, see getResponse() for its outcome.
+ * <p/>
+ * The body is sent from a thread dedicated to this upload, which waits for the data written here: pausing only
+ * holds up this upload. The upload fails if nothing is written for idleTimeoutInMs.
+ */
+public class UploadOutputStream extends OutputStream
+{
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+    private static final long POLL_IN_MS = 100;
+
+    private final String outputPath;
+    private final int chunkSize;
+    private final long idleTimeoutInMs;
+    private final BlockingQueue<ByteBuffer> chunks;
+    private ByteBuffer pending;
+    private boolean closed = false;
+    private volatile boolean terminated = false;
+    private Future<Response> response = null;
+
+    UploadOutputStream(final String outputPath, final int chunkSize, final int maxChunks, final long idleTimeoutInMs)
+    {
+        this.outputPath = outputPath;
+        this.chunkSize = chunkSize;
+        this.idleTimeoutInMs = idleTimeoutInMs;
+        this.chunks = new ArrayBlockingQueue<ByteBuffer>(maxChunks);
+        this.pending = ByteBuffer.allocate(chunkSize);
+    }
+
+    /**
+     * @return a Future on the action-core response, completed once the stream has been closed and fully sent
+     */
+    public Future<Response> getResponse()
+    {
+        return response;
+    }
+
+    String getOutputPath()
+    {
+        return outputPath;
+    }
+
+    void setResponse(final Future<Response> response)
+    {
+        this.response = response;
+    }
+
+    /**
+     * Called once the request is over (successfully or not): pending and future writes fail,
+     * and the body stops waiting for data.
+     */
+    void terminate()
+    {
+        terminated = true;
+        chunks.clear();
+    }
+
+    /**
+     * @return the request body, draining what is written to this stream
+     */
+    Body getBody()
+    {
+        return new AbstractByteBufferBody()
+        {
+            @Override
+            protected ByteBuffer next() throws IOException
+            {
+                try {
+                    final long deadline = System.currentTimeMillis() + idleTimeoutInMs;
+                    while (!terminated) {
+                        final ByteBuffer chunk = chunks.poll(POLL_IN_MS, TimeUnit.MILLISECONDS);
+                        if (chunk != null) {
+                            return chunk == END_OF_STREAM ? null : chunk;
+                        }
+                        if (System.currentTimeMillis() > deadline) {
+                            terminate();
+                            throw new IOException("Nothing written to upload to " + outputPath + " for " + idleTimeoutInMs + " ms");
+                        }
+                    }
+                    throw new IOException("Upload to " + outputPath + " terminated before the stream was closed");
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for data to upload to " + outputPath);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        ensureOpen();
+        pending.put((byte) b);
+        if (!pending.hasRemaining()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException
+    {
+        ensureOpen();
+        while (len > 0) {
+            final int written = Math.min(len, pending.remaining());
+            pending.put(b, off, written);
+            off += written;
+            len -= written;
+            if (!pending.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Hand the buffered bytes over to the http client, blocking if too many chunks are already in flight
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        ensureOpen();
+        if (pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        enqueue(pending);
+        pending = ByteBuffer.allocate(chunkSize);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        flush();
+        enqueue(END_OF_STREAM);
+        closed = true;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Upload stream to " + outputPath + " is closed");
+        }
+    }
+
+    private void enqueue(final ByteBuffer chunk) throws IOException
+    {
+        try {
+            while (!terminated) {
+                if (chunks.offer(chunk, POLL_IN_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading to " + outputPath);
+        }
+        throw new IOException("Upload to " + outputPath + " terminated before the stream was closed");
+    }
+}
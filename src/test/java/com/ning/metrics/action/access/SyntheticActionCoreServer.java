@@ -0,0 +1,291 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletException;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+
+/**
+ * Embedded stand-in for the action-core, serving synthetic listings of configurable size.
+ * <p/>
+ * Listings are generated on the fly and streamed, so that the server itself stays lean whatever the payload size.
+ * Paths starting with MR_PATH_PREFIX are served in the MR (tab separated records) format, other ones in the
+ * DEFAULT format with events carrying the fields "1", "2" and "3". Each event can also carry a padding field that
+ * clients don't ask for, to make the payload large compared to the events kept. Uploads are read and discarded.
+ */
+public class SyntheticActionCoreServer
+{
+    public static final String MR_PATH_PREFIX = "/mr";
+    public static final String[] DEFAULT_EVENT_FIELDS = {"1", "2", "3"};
+    public static final String[] MR_EVENT_FIELDS = {"ts", "duration", "ipSrc", "ipDst"};
+
+    private static final String JSON_PATH = "/rest/1.0/json";
+    private static final String UPLOAD_PATH = "/rest/1.0";
+
+    private final int files;
+    private final int eventsPerFile;
+    private final int depth;
+    private final long latencyInMs;
+    private final String eventPadding;
+
+    private final AtomicLong bytesServed = new AtomicLong(0);
+    private final AtomicLong listingsServed = new AtomicLong(0);
+    private final AtomicLong bytesUploaded = new AtomicLong(0);
+
+    private int port;
+    private SocketConnector connector;
+    private Server server;
+
+    /**
+     * @param files         number of files in a listing
+     * @param eventsPerFile number of events in each file
+     * @param depth         number of directory levels the files are spread over
+     * @param latencyInMs   delay before the first byte of each listing is sent
+     * @param eventPadding  size of the padding field of each event, 0 for none
+     */
+    public SyntheticActionCoreServer(final int files, final int eventsPerFile, final int depth, final long latencyInMs, final int eventPadding)
+    {
+        this.files = files;
+        this.eventsPerFile = eventsPerFile;
+        this.depth = depth;
+        this.latencyInMs = latencyInMs;
+
+        final StringBuilder padding = new StringBuilder();
+        if (eventPadding > 0) {
+            padding.append(",\"padding\":\"");
+            for (int i = 0; i < eventPadding; i++) {
+                padding.append('x');
+            }
+            padding.append('"');
+        }
+        this.eventPadding = padding.toString();
+    }
+
+    public void start() throws Exception
+    {
+        port = findFreePort();
+        connector = new SocketConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(port);
+
+        server = new Server()
+        {
+            @Override
+            public void handle(final HttpConnection connection) throws IOException, ServletException
+            {
+                final Request request = connection.getRequest();
+                final Response response = connection.getResponse();
+                final String uriPath = request.getUri().getPath();
+
+                if ("POST".equals(request.getMethod()) && UPLOAD_PATH.equals(uriPath)) {
+                    bytesUploaded.addAndGet(drain(request.getInputStream()));
+                    response.setStatus(200);
+                }
+                else if (JSON_PATH.equals(uriPath) && request.getParameter("path") != null) {
+                    sleep(latencyInMs);
+                    response.setStatus(200);
+                    response.setContentType("application/json");
+                    final CountingOutputStream out = new CountingOutputStream(response.getOutputStream());
+                    writeListing(request.getParameter("path"), out);
+                    bytesServed.addAndGet(out.getCount());
+                    listingsServed.incrementAndGet();
+                }
+                else {
+                    response.setStatus(404);
+                }
+                request.setHandled(true);
+            }
+        };
+        server.setThreadPool(new ExecutorThreadPool());
+        server.addConnector(connector);
+        connector.start();
+        server.start();
+    }
+
+    public void stop() throws Exception
+    {
+        server.stop();
+        connector.stop();
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public int getEventsPerListing()
+    {
+        return files * eventsPerFile;
+    }
+
+    public long getBytesServed()
+    {
+        return bytesServed.get();
+    }
+
+    public long getListingsServed()
+    {
+        return listingsServed.get();
+    }
+
+    public long getBytesUploaded()
+    {
+        return bytesUploaded.get();
+    }
+
+    /**
+     * Write the listing served for path
+     */
+    public void writeListing(final String path, final OutputStream out) throws IOException
+    {
+        final boolean mr = path.startsWith(MR_PATH_PREFIX);
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        final Set<String> directories = new HashSet<String>();
+
+        writer.write("{\"path\":\"" + path + "\",\"parentPath\":\"" + path.substring(0, Math.max(0, path.lastIndexOf('/'))) + "\",\"entries\":[");
+        boolean first = true;
+        for (int f = 0; f < files; f++) {
+            final String directory = directoryFor(path, f);
+            if (directories.add(directory) && !directory.equals(path)) {
+                writer.write(first ? "" : ",");
+                writer.write("{\"path\":\"" + directory + "\",\"mtime\":1304459806942,\"size\":0,\"replication\":0,\"isDir\":true,\"content\":\"\"}");
+                first = false;
+            }
+
+            writer.write(first ? "" : ",");
+            writer.write("{\"path\":\"" + directory + "/part-" + f + "\",\"mtime\":1304459806898,\"size\":0,\"replication\":3,\"isDir\":false,\"content\":[");
+            for (int e = 0; e < eventsPerFile; e++) {
+                writer.write(e == 0 ? "" : ",");
+                if (mr) {
+                    writer.write("{\"record\":\"2011-05-10 16:45:" + (e % 60) + "\\t" + e + ".264\\t1.2.3." + (f % 256) + "\\t5.6.7." + (e % 256) + "\"" + eventPadding + "}");
+                }
+                else {
+                    writer.write("{\"1\":" + (1304459794698L + e) + ",\"2\":\"HOURLY\",\"3\":\"world-" + f + "-" + e + "\"" + eventPadding + "}");
+                }
+            }
+            writer.write("]}");
+            first = false;
+            // Send each file as it is generated, to exercise the client streaming path
+            writer.flush();
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * Spread files over depth levels of two sub-directories each
+     */
+    private String directoryFor(final String path, final int file)
+    {
+        final StringBuilder directory = new StringBuilder(path);
+        for (int level = 0; level < depth; level++) {
+            directory.append('/').append((file >> level) & 1);
+        }
+        return directory.toString();
+    }
+
+    private static long drain(final InputStream in) throws IOException
+    {
+        final byte[] temp = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = in.read(temp)) > 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static void sleep(final long millis) throws IOException
+    {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while simulating latency");
+        }
+    }
+
+    private static int findFreePort() throws IOException
+    {
+        ServerSocket socket = null;
+
+        try {
+            socket = new ServerSocket(0);
+
+            return socket.getLocalPort();
+        }
+        finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        private final OutputStream delegate;
+        private long count = 0;
+
+        public CountingOutputStream(final OutputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            delegate.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            delegate.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            delegate.flush();
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.ning.metrics.action.access;
 
 import com.google.common.collect.ImmutableList;
 import com.ning.metrics.action.access.ActionCoreParser.ActionCoreParserFormat;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,10 +26,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.servlet.ServletException;
 import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.server.Request;
@@ -46,11 +58,17 @@ public class TestActionAccessor
     private static final String SRC_TEST_RESOURCES = "src/test/resources";
     private static final String ACTION_CORE_BASE_PATH_PREFIX = "/events/qa/smileEvent";
     private static final String ACTION_CORE_BASE_PATH = "/rest/1.0/json?path=" + ACTION_CORE_BASE_PATH_PREFIX;
+    private static final String ACTION_CORE_UPLOAD_PATH = "/rest/1.0";
+    private static final String ACTION_CORE_ERROR_PATH = "/error";
+    private static final String ACTION_CORE_SLOW_UPLOAD_PATH = "/tmp/slow";
+    private static final String ACTION_CORE_GATED_PATH = "/gatedTimeSeries";
 
     private int port;
     private SocketConnector connector;
     private Server server;
     private final AtomicInteger serversHits = new AtomicInteger(0);
+    private final AtomicReference<byte[]> lastUpload = new AtomicReference<byte[]>();
+    private final CountDownLatch gatedListingRelease = new CountDownLatch(1);
     private final boolean jettyShouldBomb = false;
 
     @BeforeClass(alwaysRun = true)
@@ -70,7 +88,7 @@ public class TestActionAccessor
                 final Request request = connection.getRequest();
                 final Response response = connection.getResponse();
 
-                if (jettyShouldBomb) {
+                if (jettyShouldBomb || URLDecoder.decode(request.getUri().getCompletePath(), "UTF-8").contains(ACTION_CORE_BASE_PATH + ACTION_CORE_ERROR_PATH)) {
                     response.setStatus(500);
                     request.setHandled(true);
                     return;
@@ -79,6 +97,16 @@ public class TestActionAccessor
                     response.setStatus(200);
                 }
 
+                if ("POST".equals(request.getMethod()) && request.getUri().getPath().equals(ACTION_CORE_UPLOAD_PATH)) {
+                    if (request.getParameter("path").startsWith(ACTION_CORE_SLOW_UPLOAD_PATH)) {
+                        // Let the client fill up the socket buffers before reading
+                        sleep(500);
+                    }
+                    lastUpload.set(readFully(request.getInputStream()));
+                    request.setHandled(true);
+                    return;
+                }
+
                 File file = null;
 
                 String completePath = request.getUri().getCompletePath();
@@ -107,17 +135,21 @@ public class TestActionAccessor
                     file = new File(SRC_TEST_RESOURCES + "/events.qa.smileEvent.2011.05.03.21.recursive.json");
                 }
 
-                if (file != null) {
-                    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                    final InputStream is = new FileInputStream(file);
-                    byte[] temp = new byte[1024];
-                    int read;
-
-                    while ((read = is.read(temp)) > 0) {
-                        buffer.write(temp, 0, read);
+                if (completePath.equals(ACTION_CORE_BASE_PATH + ACTION_CORE_GATED_PATH + "&recursive=true&raw=false")) {
+                    // Send the first half of the listing right away, the rest once released by the test
+                    byte[] data = readFully(new FileInputStream(new File(SRC_TEST_RESOURCES + "/timeSeries.json")));
+                    response.getOutputStream().write(data, 0, data.length / 2);
+                    response.getOutputStream().flush();
+                    try {
+                        gatedListingRelease.await(10, TimeUnit.SECONDS);
                     }
-
-                    byte[] data = buffer.toByteArray();
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    response.getOutputStream().write(data, data.length / 2, data.length - data.length / 2);
+                }
+                else if (file != null) {
+                    byte[] data = readFully(new FileInputStream(file));
                     response.getWriter().print(new String(data));
                 }
                 request.setHandled(true);
@@ -136,6 +168,28 @@ public class TestActionAccessor
         connector.stop();
     }
 
+    private static byte[] readFully(final InputStream is) throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] temp = new byte[1024];
+        int read;
+
+        while ((read = is.read(temp)) > 0) {
+            buffer.write(temp, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void sleep(final long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private int findFreePort() throws IOException
     {
         ServerSocket socket = null;
@@ -201,6 +255,180 @@ public class TestActionAccessor
         testAccessSync(ActionCoreParserFormat.ACTION_CORE_FORMAT_DEFAULT, false, "/2011/05", 0);
     }
 
+    @Test(groups = "slow", enabled = true)
+    public void testAccessPipelined() throws Exception
+    {
+        ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
+        ArrayList<String> desiredEvents = new ArrayList<String>(Arrays.asList("ts", "duration", "ipSrc", "ipDst"));
+
+        Future<ImmutableList<Map<String, Object>>> future = accessor.getPathPipelined(ACTION_CORE_BASE_PATH_PREFIX + "/timeSeries", ActionCoreParserFormat.ACTION_CORE_FORMAT_MR, desiredEvents, true, false);
+        ImmutableList<Map<String, Object>> events = future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(events.size(), 35);
+        accessor.close();
+    }
+
+    @Test(groups = "slow", enabled = true)
+    public void testAccessPipelinedOverlapsTransferAndParsing() throws Exception
+    {
+        ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
+        ArrayList<String> desiredEvents = new ArrayList<String>(Arrays.asList("ts", "duration", "ipSrc", "ipDst"));
+
+        Future<ImmutableList<Map<String, Object>>> future = accessor.getPathPipelined(ACTION_CORE_BASE_PATH_PREFIX + ACTION_CORE_GATED_PATH, ActionCoreParserFormat.ACTION_CORE_FORMAT_MR, desiredEvents, true, false);
+
+        // The server holds back the second half of the listing: parsing must already be under way
+        List<String> parsers = threadsInside(ActionCoreParser.class, 5000);
+        Assert.assertFalse(parsers.isEmpty(), "parsing did not start before the end of the transfer");
+        Assert.assertFalse(future.isDone());
+        for (String parser : parsers) {
+            Assert.assertTrue(parser.startsWith("action-access-parser-"), "parsing on thread " + parser);
+        }
+
+        gatedListingRelease.countDown();
+        Assert.assertEquals(future.get(5, TimeUnit.SECONDS).size(), 35);
+        accessor.close();
+    }
+
+    /**
+     * @return the names of the threads running code of the given class, waiting up to timeoutInMs for one to show up
+     */
+    private static List<String> threadsInside(final Class<?> clazz, final long timeoutInMs) throws InterruptedException
+    {
+        final List<String> threads = new ArrayList<String>();
+        final long deadline = System.currentTimeMillis() + timeoutInMs;
+        while (threads.isEmpty() && System.currentTimeMillis() < deadline) {
+            for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+                for (StackTraceElement frame : thread.getValue()) {
+                    if (frame.getClassName().equals(clazz.getName())) {
+                        threads.add(thread.getKey().getName());
+                        break;
+                    }
+                }
+            }
+            Thread.sleep(10);
+        }
+        return threads;
+    }
+
+    @Test(groups = "slow", enabled = true)
+    public void testStreamingUpload() throws Exception
+    {
+        ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
+        byte[] data = new byte[300 * 1024 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        UploadOutputStream out = accessor.openUpload("/tmp/streamed");
+        out.write(data, 0, 1000);
+        out.write(data, 1000, data.length - 1000);
+        out.close();
+        Assert.assertEquals(out.getResponse().get(5, TimeUnit.SECONDS).getStatusCode(), 200);
+        Assert.assertEquals(lastUpload.get(), data);
+
+        Iterator<ByteBuffer> buffers = Arrays.asList(ByteBuffer.wrap(data, 0, 5), ByteBuffer.wrap(data, 5, data.length - 5)).iterator();
+        Assert.assertEquals(accessor.upload(buffers, "/tmp/streamed").get(5, TimeUnit.SECONDS).getStatusCode(), 200);
+        Assert.assertEquals(lastUpload.get(), data);
+
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data));
+        Assert.assertEquals(accessor.upload(channel, "/tmp/streamed").get(5, TimeUnit.SECONDS).getStatusCode(), 200);
+        Assert.assertEquals(lastUpload.get(), data);
+        Assert.assertFalse(channel.isOpen());
+        accessor.close();
+    }
+
+    @Test(groups = "slow", enabled = true)
+    public void testChannelUploadFailure() throws Exception
+    {
+        ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
+        final AtomicInteger reads = new AtomicInteger(0);
+        ReadableByteChannel channel = new ReadableByteChannel()
+        {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst)
+            {
+                if (reads.incrementAndGet() > 1) {
+                    throw new IllegalStateException("broken source");
+                }
+                dst.put(new byte[100]);
+                return 100;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return open;
+            }
+
+            @Override
+            public void close()
+            {
+                open = false;
+            }
+        };
+
+        // The upload must be cancelled right away, not left waiting for more data
+        Future<?> upload = accessor.upload(channel, "/tmp/broken");
+        try {
+            upload.get(5, TimeUnit.SECONDS);
+            Assert.fail("expected the upload to be cancelled");
+        }
+        catch (CancellationException e) {
+            // Expected
+        }
+        Assert.assertFalse(channel.isOpen());
+        accessor.close();
+    }
+
+    @Test(groups = "slow", enabled = true)
+    public void testStalledUploadDoesNotDelayOtherRequests() throws Exception
+    {
+        ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
+        ArrayList<String> desiredEvents = new ArrayList<String>(Arrays.asList("ts", "duration", "ipSrc", "ipDst"));
+        byte[] data = new byte[4 * 1024 * 1024];
+
+        // Write a few MB, then stall without closing the stream
+        UploadOutputStream out = accessor.openUpload(ACTION_CORE_SLOW_UPLOAD_PATH + "/stalled");
+        out.write(data);
+        out.flush();
+        // Let the server catch up, the http client is then left waiting for more data
+        Thread.sleep(1000);
+
+        // Concurrent requests, to get connections on all the http client I/O threads
+        List<Future<ImmutableList<Map<String, Object>>>> futures = new ArrayList<Future<ImmutableList<Map<String, Object>>>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(accessor.getPathPipelined(ACTION_CORE_BASE_PATH_PREFIX + "/timeSeries", ActionCoreParserFormat.ACTION_CORE_FORMAT_MR, desiredEvents, true, false));
+        }
+        for (Future<ImmutableList<Map<String, Object>>> future : futures) {
+            Assert.assertEquals(future.get(4, TimeUnit.SECONDS).size(), 35);
+        }
+
+        out.close();
+        Assert.assertEquals(out.getResponse().get(5, TimeUnit.SECONDS).getStatusCode(), 200);
+        Assert.assertEquals(lastUpload.get().length, data.length);
+        accessor.close();
+    }
+
+    @Test(groups = "slow", enabled = true)
+    public void testAccessServerError() throws Exception
+    {
+        ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
+        ArrayList<String> desiredEvents = new ArrayList<String>(Arrays.asList("1", "2", "3"));
+
+        Assert.assertNull(accessor.getPath(ACTION_CORE_BASE_PATH_PREFIX + ACTION_CORE_ERROR_PATH, ActionCoreParserFormat.ACTION_CORE_FORMAT_DEFAULT, desiredEvents, false, false, 5));
+
+        Future<ImmutableList<Map<String, Object>>> future = accessor.getPathPipelined(ACTION_CORE_BASE_PATH_PREFIX + ACTION_CORE_ERROR_PATH, ActionCoreParserFormat.ACTION_CORE_FORMAT_DEFAULT, desiredEvents, false, false);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("expected the pipelined fetch to fail on http 500");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException, "unexpected cause " + e.getCause());
+        }
+        accessor.close();
+    }
+
     private void testAccessSync(ActionCoreParserFormat format, boolean recursive, String pathDate, int expectedEventSize) throws Exception
     {
         ActionAccessor accessor = new ActionAccessor("127.0.0.1", port);
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.google.common.collect.ImmutableList;
+import com.ning.metrics.action.access.ActionCoreParser.ActionCoreParserFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Load tests against a synthetic action-core, asserting heap and throughput bounds.
+ * <p/>
+ * These tests are excluded from the default build, run them with mvn test -Pload. Defaults keep the run short.
+ * To soak at production scale, override via system properties, e.g.
+ * -Daction.access.load.files=2000 -Daction.access.load.iterations=50 (see the constants below for the full list).
+ * <p/>
+ * Heap bounds apply to the live heap (sampled right after full GCs), so garbage doesn't count. For getPath, the
+ * events returned are measured on their own first: the bound applies to what is held on top of them while fetching.
+ * Sampling forces a GC every few milliseconds, hence throughput is timed in a separate pass, without the sampler.
+ */
+public class TestActionAccessorLoad
+{
+    private static final Logger log = LoggerFactory.getLogger(TestActionAccessorLoad.class);
+
+    private static final int CLIENTS = Integer.getInteger("action.access.load.clients", 4);
+    private static final int ITERATIONS = Integer.getInteger("action.access.load.iterations", 3);
+    private static final int FILES = Integer.getInteger("action.access.load.files", 200);
+    private static final int EVENTS_PER_FILE = Integer.getInteger("action.access.load.eventsPerFile", 75);
+    // Unrequested data in each event: the payload is then larger than the events kept, as the buffering bound needs
+    private static final int EVENT_PADDING = Integer.getInteger("action.access.load.eventPadding", 1024);
+    private static final int DEPTH = Integer.getInteger("action.access.load.depth", 3);
+    private static final long LATENCY_IN_MS = Long.getLong("action.access.load.latencyInMs", 50);
+    private static final int UPLOAD_MB_PER_CLIENT = Integer.getInteger("action.access.load.uploadMBPerClient", 32);
+    private static final int TIMEOUT_IN_SEC = Integer.getInteger("action.access.load.timeoutInSec", 120);
+    // Live heap allowed on top of the returned events while fetching, as a multiple of the bytes in flight
+    // (payload size * clients). With the defaults, streaming holds about 0.3 to 0.5, buffering the whole response
+    // into a String more than 1.3.
+    private static final double MAX_BUFFERING_FACTOR = Double.parseDouble(System.getProperty("action.access.load.maxBufferingFactor", "0.8"));
+    // Live heap allowed per client for streaming operations (File download, uploads), whatever the payload size
+    private static final long MAX_STREAMING_HEAP_PER_CLIENT_IN_MB = Long.getLong("action.access.load.maxStreamingHeapPerClientInMB", 4);
+    // Slack for allocations unrelated to the payload (http client, Jetty and test harness)
+    private static final long HEAP_SLACK_IN_MB = Long.getLong("action.access.load.heapSlackInMB", 16);
+    private static final int EVENTS_SIZE_MEASUREMENTS = 5;
+    // Throughput floors, about half of what the default settings achieve on a single core
+    private static final long MIN_GETPATH_THROUGHPUT_IN_KB_PER_SEC = Long.getLong("action.access.load.minGetPathThroughputInKBPerSec", 20 * 1024);
+    private static final long MIN_UPLOAD_THROUGHPUT_IN_KB_PER_SEC = Long.getLong("action.access.load.minUploadThroughputInKBPerSec", 80 * 1024);
+
+    private SyntheticActionCoreServer server;
+    private ExecutorService clients;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUpGlobal() throws Exception
+    {
+        server = new SyntheticActionCoreServer(FILES, EVENTS_PER_FILE, DEPTH, LATENCY_IN_MS, EVENT_PADDING);
+        server.start();
+        clients = Executors.newFixedThreadPool(CLIENTS);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDownGlobal() throws Exception
+    {
+        clients.shutdownNow();
+        server.stop();
+    }
+
+    @Test(groups = "load", enabled = true)
+    public void testConcurrentGetPathDefault() throws Exception
+    {
+        testConcurrentGetPath(ActionCoreParserFormat.ACTION_CORE_FORMAT_DEFAULT, "/events/load", SyntheticActionCoreServer.DEFAULT_EVENT_FIELDS);
+    }
+
+    @Test(groups = "load", enabled = true)
+    public void testConcurrentGetPathMR() throws Exception
+    {
+        testConcurrentGetPath(ActionCoreParserFormat.ACTION_CORE_FORMAT_MR, SyntheticActionCoreServer.MR_PATH_PREFIX + "/load", SyntheticActionCoreServer.MR_EVENT_FIELDS);
+    }
+
+    @Test(groups = "load", enabled = true)
+    public void testConcurrentFileDownload() throws Exception
+    {
+        final long bytesBefore = server.getBytesServed();
+        final long listingsBefore = server.getListingsServed();
+        final List<File> outputFiles = new ArrayList<File>();
+        for (int i = 0; i < CLIENTS; i++) {
+            final File file = File.createTempFile("action-access-load", ".json");
+            file.deleteOnExit();
+            outputFiles.add(file);
+        }
+
+        final HeapSampler heap = new HeapSampler();
+        runConcurrently(new ClientTask()
+        {
+            @Override
+            public void run(final int client) throws Exception
+            {
+                // The File download closes the accessor's client, use a dedicated accessor
+                final ActionAccessor accessor = new ActionAccessor("127.0.0.1", server.getPort());
+                try {
+                    accessor.getPath("/events/load", true, false, outputFiles.get(client));
+                }
+                finally {
+                    accessor.close();
+                }
+            }
+        }, 1);
+        final long peakHeap = heap.stop();
+
+        final long listings = server.getListingsServed() - listingsBefore;
+        final long bytes = server.getBytesServed() - bytesBefore;
+        Assert.assertEquals(listings, CLIENTS);
+        for (final File file : outputFiles) {
+            Assert.assertEquals(file.length(), bytes / listings);
+            file.delete();
+        }
+
+        // No throughput bound here: the File download only polls for completion every 10 seconds
+        reportHeap("File download", peakHeap);
+        assertHeapBelow(peakHeap, MAX_STREAMING_HEAP_PER_CLIENT_IN_MB * 1024 * 1024 * CLIENTS);
+    }
+
+    @Test(groups = "load", enabled = true)
+    public void testConcurrentUpload() throws Exception
+    {
+        final ActionAccessor accessor = new ActionAccessor("127.0.0.1", server.getPort());
+        final byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'a');
+        final long bytesPerClient = (long) UPLOAD_MB_PER_CLIENT * 1024 * 1024;
+        final ClientTask upload = new ClientTask()
+        {
+            @Override
+            public void run(final int client) throws Exception
+            {
+                final UploadOutputStream out = accessor.openUpload("/tmp/load/" + client);
+                for (long written = 0; written < bytesPerClient; written += chunk.length) {
+                    out.write(chunk);
+                }
+                out.close();
+                Assert.assertEquals(out.getResponse().get(TIMEOUT_IN_SEC, TimeUnit.SECONDS).getStatusCode(), 200);
+            }
+        };
+
+        final long bytesBefore = server.getBytesUploaded();
+        final long start = System.nanoTime();
+        runConcurrently(upload, 1);
+        final long durationInNs = System.nanoTime() - start;
+        final long bytes = server.getBytesUploaded() - bytesBefore;
+        Assert.assertEquals(bytes, bytesPerClient * CLIENTS);
+        reportThroughput("Upload", bytes, durationInNs);
+
+        final HeapSampler heap = new HeapSampler();
+        runConcurrently(upload, 1);
+        final long peakHeap = heap.stop();
+        accessor.close();
+        reportHeap("Upload", peakHeap);
+
+        assertHeapBelow(peakHeap, MAX_STREAMING_HEAP_PER_CLIENT_IN_MB * 1024 * 1024 * CLIENTS);
+        assertThroughputAbove(bytes, durationInNs, MIN_UPLOAD_THROUGHPUT_IN_KB_PER_SEC);
+    }
+
+    private void testConcurrentGetPath(final ActionCoreParserFormat format, final String path, final String[] fields) throws Exception
+    {
+        final ActionAccessor accessor = new ActionAccessor("127.0.0.1", server.getPort());
+        final ArrayList<String> desiredEventFields = new ArrayList<String>(Arrays.asList(fields));
+        final long eventsSize = measureEventsSize(format, path, desiredEventFields);
+        final ClientTask getPath = new ClientTask()
+        {
+            @Override
+            public void run(final int client) throws Exception
+            {
+                final ImmutableList<Map<String, Object>> events = accessor.getPath(path, format, desiredEventFields, true, false, TIMEOUT_IN_SEC);
+                Assert.assertNotNull(events);
+                Assert.assertEquals(events.size(), server.getEventsPerListing());
+            }
+        };
+
+        final long bytesBefore = server.getBytesServed();
+        final long listingsBefore = server.getListingsServed();
+        final long start = System.nanoTime();
+        runConcurrently(getPath, ITERATIONS);
+        final long durationInNs = System.nanoTime() - start;
+        final long listings = server.getListingsServed() - listingsBefore;
+        final long bytes = server.getBytesServed() - bytesBefore;
+        Assert.assertEquals(listings, (long) CLIENTS * ITERATIONS);
+        reportThroughput("getPath " + format, bytes, durationInNs);
+
+        final HeapSampler heap = new HeapSampler();
+        runConcurrently(getPath, ITERATIONS);
+        final long peakHeap = heap.stop();
+        accessor.close();
+        reportHeap("getPath " + format, peakHeap);
+
+        // Each client holds at most one list of events at a time
+        final long buffered = Math.max(0, peakHeap - eventsSize * CLIENTS);
+        final long payloadInFlight = (bytes / listings) * CLIENTS;
+        log.info(String.format("getPath %s: events %d MB per listing, %d MB held on top of them (%.2f times the payload in flight)",
+            format, eventsSize / (1024 * 1024), buffered / (1024 * 1024), (double) buffered / payloadInFlight));
+        assertHeapBelow(buffered, (long) (MAX_BUFFERING_FACTOR * payloadInFlight));
+        assertThroughputAbove(bytes, durationInNs, MIN_GETPATH_THROUGHPUT_IN_KB_PER_SEC);
+    }
+
+    /**
+     * @return the live heap retained by the events of one listing, in bytes (median of a few measurements)
+     */
+    private long measureEventsSize(final ActionCoreParserFormat format, final String path, final ArrayList<String> desiredEventFields) throws Exception
+    {
+        // Parse locally, so that nothing the accessor holds on to gets counted
+        final ByteArrayOutputStream listing = new ByteArrayOutputStream();
+        server.writeListing(path, listing);
+        final byte[] json = listing.toByteArray();
+
+        final long[] sizes = new long[EVENTS_SIZE_MEASUREMENTS];
+        for (int i = 0; i < sizes.length; i++) {
+            final long before = HeapSampler.liveHeap();
+            final ImmutableList<Map<String, Object>> events = new ActionCoreParser(format, desiredEventFields, "|").parse(new ByteArrayInputStream(json));
+            sizes[i] = HeapSampler.liveHeap() - before;
+            Assert.assertEquals(events.size(), server.getEventsPerListing());
+        }
+        Arrays.sort(sizes);
+        return sizes[sizes.length / 2];
+    }
+
+    private interface ClientTask
+    {
+        void run(int client) throws Exception;
+    }
+
+    /**
+     * Run the task iterations times on each client concurrently, and rethrow the first failure.
+     * Clients start each iteration together, so that they go through the same phases (transfer, parsing) at the same time.
+     */
+    private void runConcurrently(final ClientTask task, final int iterations) throws Exception
+    {
+        final CyclicBarrier iterationStart = new CyclicBarrier(CLIENTS);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < CLIENTS; i++) {
+            final int client = i;
+            futures.add(clients.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for (int j = 0; j < iterations; j++) {
+                        iterationStart.await(TIMEOUT_IN_SEC, TimeUnit.SECONDS);
+                        task.run(client);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (final Future<Void> future : futures) {
+            future.get((long) TIMEOUT_IN_SEC * iterations, TimeUnit.SECONDS);
+        }
+    }
+
+    private void reportThroughput(final String operation, final long bytes, final long durationInNs)
+    {
+        log.info(String.format("%s: %d clients, %d MB in %d ms (%d KB/s)",
+            operation, CLIENTS, bytes / (1024 * 1024), TimeUnit.NANOSECONDS.toMillis(durationInNs), kbPerSec(bytes, durationInNs)));
+    }
+
+    private void reportHeap(final String operation, final long peakHeap)
+    {
+        log.info(String.format("%s: %d clients, peak live heap growth %d MB", operation, CLIENTS, peakHeap / (1024 * 1024)));
+    }
+
+    private void assertHeapBelow(final long peakHeap, final long bound)
+    {
+        final long boundWithSlack = bound + HEAP_SLACK_IN_MB * 1024 * 1024;
+        Assert.assertTrue(peakHeap <= boundWithSlack, String.format("peak heap growth %d MB above %d MB", peakHeap / (1024 * 1024), boundWithSlack / (1024 * 1024)));
+    }
+
+    private void assertThroughputAbove(final long bytes, final long durationInNs, final long minThroughputInKBPerSec)
+    {
+        final long throughput = kbPerSec(bytes, durationInNs);
+        Assert.assertTrue(throughput >= minThroughputInKBPerSec, String.format("throughput %d KB/s below %d KB/s", throughput, minThroughputInKBPerSec));
+    }
+
+    private static long kbPerSec(final long bytes, final long durationInNs)
+    {
+        return (bytes / 1024) * TimeUnit.SECONDS.toNanos(1) / Math.max(1, durationInNs);
+    }
+
+    /**
+     * Samples the live heap (used heap right after a full GC) in the background and records its peak growth
+     * over the baseline. Garbage is not counted: only what the code under test retains.
+     */
+    private static class HeapSampler implements Runnable
+    {
+        private static final long SAMPLING_PERIOD_IN_MS = 20;
+        private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        private final long baseline;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        public HeapSampler()
+        {
+            baseline = liveHeap();
+            peak = baseline;
+            thread = new Thread(this, "heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run()
+        {
+            while (running) {
+                peak = Math.max(peak, liveHeap());
+                try {
+                    Thread.sleep(SAMPLING_PERIOD_IN_MS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the peak live heap growth, in bytes
+         */
+        public long stop() throws InterruptedException
+        {
+            running = false;
+            thread.join();
+            return Math.max(0, peak - baseline);
+        }
+
+        static long liveHeap()
+        {
+            memory.gc();
+            return memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.google.common.collect.ImmutableList;
+import com.ning.metrics.action.access.ActionCoreParser.ActionCoreParserFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestActionCoreParser
+{
+    private static final String DEFAULT_ENTRY = "{\"path\":\"/a/part-0\",\"isDir\":false,\"content\":[{\"1\":1304459794698,\"2\":\"HOURLY\",\"3\":\"world\",\"4\":\"ignored\"}]}";
+    private static final String MR_ENTRY = "{\"path\":\"/a/part-r-00000\",\"isDir\":false,\"content\":[{\"record\":\"2011-05-10 16:45:16\\t27.264\\t1.2.3.4\\t5.6.7.8\"}]}";
+    private static final String DIRECTORY_ENTRY = "{\"path\":\"/a/b\",\"isDir\":true,\"content\":\"\"}";
+
+    private final ActionCoreParser defaultParser = new ActionCoreParser(ActionCoreParserFormat.ACTION_CORE_FORMAT_DEFAULT, Arrays.asList("1", "2", "3"), "|");
+    private final ActionCoreParser mrParser = new ActionCoreParser(ActionCoreParserFormat.ACTION_CORE_FORMAT_MR, Arrays.asList("ts", "duration", "ipSrc", "ipDst"), "|");
+
+    @Test(groups = "fast")
+    public void testEntriesAfterOtherFields() throws Exception
+    {
+        final String json = "{\"path\":\"/a\",\"stats\":{\"files\":[1,2],\"nested\":{\"entries\":[]}},\"entries\":[" + DEFAULT_ENTRY + "],\"parentPath\":\"/\"}";
+
+        final ImmutableList<Map<String, Object>> events = defaultParser.parse(json);
+        Assert.assertEquals(events.size(), 1);
+        Assert.assertEquals(events.get(0).get("1"), 1304459794698L);
+        Assert.assertEquals(events.get(0).get("2"), "HOURLY");
+        Assert.assertEquals(events.get(0).get("3"), "world");
+        Assert.assertNull(events.get(0).get("4"));
+    }
+
+    @Test(groups = "fast")
+    public void testStreamAndStringAgree() throws Exception
+    {
+        final String json = "{\"entries\":[" + MR_ENTRY + "," + DIRECTORY_ENTRY + "," + MR_ENTRY + "]}";
+
+        final ImmutableList<Map<String, Object>> events = mrParser.parse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+        Assert.assertEquals(events, mrParser.parse(json));
+        Assert.assertEquals(events.size(), 2);
+        Assert.assertEquals(events.get(0).get("ipDst"), "5.6.7.8");
+    }
+
+    @Test(groups = "fast")
+    public void testEmptyStringContent() throws Exception
+    {
+        final String json = "{\"entries\":[" + DIRECTORY_ENTRY + "]}";
+
+        Assert.assertTrue(defaultParser.parse(json).isEmpty());
+        Assert.assertTrue(mrParser.parse(json).isEmpty());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testMissingEntries() throws Exception
+    {
+        defaultParser.parse("{\"path\":\"/a\",\"parentPath\":\"/\"}");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testNonArrayEntries() throws Exception
+    {
+        defaultParser.parse("{\"path\":\"/a\",\"entries\":{\"content\":\"\"}}");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testNotAnObject() throws Exception
+    {
+        defaultParser.parse("[" + DEFAULT_ENTRY + "]");
+    }
+
+    @Test(groups = "fast")
+    public void testTruncatedDocument() throws Exception
+    {
+        final String json = "{\"path\":\"/a\",\"entries\":[" + DEFAULT_ENTRY + "," + DEFAULT_ENTRY + "]}";
+
+        // Cut inside an entry, between entries, and after the entries
+        for (final int length : new int[]{json.length() - DEFAULT_ENTRY.length() / 2, json.length() - DEFAULT_ENTRY.length() - 2, json.length() - 2, json.length() - 1}) {
+            try {
+                defaultParser.parse(new ByteArrayInputStream(json.substring(0, length).getBytes("UTF-8")));
+                Assert.fail("expected a truncated listing to fail: " + json.substring(0, length));
+            }
+            catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestBodyPartInputStream
+{
+    private ExecutorService producer;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUpGlobal() throws Exception
+    {
+        producer = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDownGlobal() throws Exception
+    {
+        producer.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testReadUntilComplete() throws Exception
+    {
+        final BodyPartInputStream in = new BodyPartInputStream(4);
+        Assert.assertTrue(in.write(new byte[]{1, 2}));
+        Assert.assertTrue(in.write(new byte[]{3}));
+        in.complete();
+
+        final byte[] read = new byte[8];
+        Assert.assertEquals(in.read(read, 0, 8), 2);
+        Assert.assertEquals(in.read(), 3);
+        Assert.assertEquals(in.read(), -1);
+        Assert.assertEquals(in.read(read, 0, 8), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testFailurePropagatesAfterBufferedData() throws Exception
+    {
+        final BodyPartInputStream in = new BodyPartInputStream(4);
+        final IOException failure = new IOException("connection reset");
+        in.write(new byte[]{1});
+        in.fail(failure);
+
+        Assert.assertEquals(in.read(), 1);
+        try {
+            in.read();
+            Assert.fail("expected the producer failure");
+        }
+        catch (IOException e) {
+            Assert.assertSame(e, failure);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNonIOFailureIsWrapped() throws Exception
+    {
+        final BodyPartInputStream in = new BodyPartInputStream(4);
+        final RuntimeException failure = new RuntimeException("boom");
+        in.fail(failure);
+
+        try {
+            in.read();
+            Assert.fail("expected the producer failure");
+        }
+        catch (IOException e) {
+            Assert.assertSame(e.getCause(), failure);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReadAfterCloseFails() throws Exception
+    {
+        final BodyPartInputStream in = new BodyPartInputStream(4);
+        in.write(new byte[]{1});
+        in.close();
+
+        try {
+            in.read();
+            Assert.fail("expected a closed stream");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        Assert.assertFalse(in.write(new byte[]{2}));
+    }
+
+    @Test(groups = "fast")
+    public void testCloseUnblocksProducerOnFullBuffer() throws Exception
+    {
+        final BodyPartInputStream in = new BodyPartInputStream(1);
+        Assert.assertTrue(in.write(new byte[]{1}));
+
+        final Future<Boolean> blocked = producer.submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                return in.write(new byte[]{2});
+            }
+        });
+        try {
+            blocked.get(300, TimeUnit.MILLISECONDS);
+            Assert.fail("producer should block on a full buffer");
+        }
+        catch (TimeoutException e) {
+            // expected
+        }
+
+        in.close();
+        Assert.assertFalse(blocked.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.action.access;
+
+import com.ning.http.client.Body;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestStreamingBody
+{
+    private ExecutorService sender;
+
+    @BeforeClass(alwaysRun = true)
+    public void setUpGlobal() throws Exception
+    {
+        sender = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void tearDownGlobal() throws Exception
+    {
+        sender.shutdownNow();
+    }
+
+    @Test(groups = "fast")
+    public void testChunkFraming() throws Exception
+    {
+        final byte[] data = new byte[20];
+        Arrays.fill(data, (byte) 'a');
+        final Body body = new ChunkedBody(new ByteBufferBody(Arrays.asList(ByteBuffer.wrap(data, 0, 3), ByteBuffer.wrap(data, 3, 17)).iterator()));
+
+        Assert.assertEquals(body.getContentLength(), -1);
+        Assert.assertEquals(readAll(body, 64), "3\r\naaa\r\n11\r\naaaaaaaaaaaaaaaaa\r\n0\r\n\r\n");
+    }
+
+    @Test(groups = "fast")
+    public void testChunkFramingSplitsLargeBuffers() throws Exception
+    {
+        final byte[] data = new byte[10];
+        Arrays.fill(data, (byte) 'b');
+        final Body body = new ChunkedBody(new ByteBufferBody(Arrays.asList(ByteBuffer.wrap(data)).iterator()));
+
+        // 12 bytes of framing overhead leave room for 6 bytes of data per chunk
+        Assert.assertEquals(readAll(body, 18), "6\r\nbbbbbb\r\n4\r\nbbbb\r\n0\r\n\r\n");
+    }
+
+    @Test(groups = "fast")
+    public void testGeneratorCannotBeReplayed() throws Exception
+    {
+        final StreamingBodyGenerator generator = new StreamingBodyGenerator(new ByteBufferBody(Arrays.<ByteBuffer>asList().iterator()), "/tmp/replayed");
+        Assert.assertNotNull(generator.createBody());
+        try {
+            generator.createBody();
+            Assert.fail("a streaming body must not be replayed");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTerminateUnblocksBody() throws Exception
+    {
+        final UploadOutputStream stream = new UploadOutputStream("/tmp/terminated", 16, 2, 60000);
+        final Body body = stream.getBody();
+
+        final Future<Long> blocked = sender.submit(new Callable<Long>()
+        {
+            @Override
+            public Long call() throws Exception
+            {
+                return body.read(ByteBuffer.allocate(16));
+            }
+        });
+        try {
+            blocked.get(300, TimeUnit.MILLISECONDS);
+            Assert.fail("body should wait for data");
+        }
+        catch (TimeoutException e) {
+            // expected
+        }
+
+        stream.terminate();
+        try {
+            blocked.get(5, TimeUnit.SECONDS);
+            Assert.fail("body should fail once the upload is terminated");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException, "unexpected cause " + e.getCause());
+        }
+
+        try {
+            stream.write(1);
+            stream.flush();
+            Assert.fail("writes should fail once the upload is terminated");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    private String readAll(final Body body, final int bufferSize) throws IOException
+    {
+        final StringBuilder result = new StringBuilder();
+        final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (body.read(buffer) >= 0) {
+            buffer.flip();
+            result.append(new String(buffer.array(), 0, buffer.limit(), "US-ASCII"));
+            buffer.clear();
+        }
+        return result.toString();
+    }
+}